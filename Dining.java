@@ -13,13 +13,16 @@
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.*;
 import java.io.*;
 import javax.swing.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.lang.*;
 import java.lang.Thread.*;
 
-// This code has six main classes:
+// This code has eight main classes:
 //  Dining
 //      The public, "main" class.  Set up so the code can run either
 //      stand-alone or as an applet in a web page or in appletviewer.
@@ -32,11 +35,19 @@ import java.lang.Thread.*;
 //  Coordinator
 //      Provides mechanisms to suspend, resume, and reset the state of
 //      worker threads (philosophers).
+//  Heatmap
+//      Optional raster view with one pixel per philosopher, for tables
+//      too large to draw as blobs.
 //  UI
 //      Manages graphical layout and button presses.
+//  ModelChecker
+//      Headless; explores every interleaving of the fork protocol for a
+//      small table, looking for deadlock, starvation, and two neighbors
+//      eating at once.
 
 public class Dining extends JApplet {
 		static boolean runTests = false;
+		static boolean showHeatmap = false;
     private static final int CANVAS_SIZE = 360;
         // pixels in each direction;
         // needs to agree with size in dining.html
@@ -48,7 +59,11 @@ public class Dining extends JApplet {
         try {
             SwingUtilities.invokeAndWait(new Runnable() {
                 public void run() {
-                    new UI(pane, c, t, isApplet);
+                    Heatmap h = null;
+                    if (showHeatmap) {
+                        h = new Heatmap(t.getPhilosophers(), CANVAS_SIZE);
+                    }
+                    new UI(pane, c, t, h, isApplet);
                 }
             });
         } catch (Exception e) {
@@ -63,11 +78,33 @@ public class Dining extends JApplet {
 
     // called only when this is run as an application:
     public static void main(String[] args) {
+				for (int i = 0; i < args.length; i++) {
+					if(args[i].equals("-t")){
+						runTests = true;
+					}
+					if(args[i].equals("-h")){
+						showHeatmap = true;
+					}
+					if(args[i].equals("-m")){
+						// model-check instead of animating; no GUI
+						int n = 5;
+						if (i+1 < args.length) {
+							try {
+								n = Integer.parseInt(args[i+1]);
+							} catch (NumberFormatException e) {
+								n = 0;      // reported below
+							}
+						}
+						if (n < 2 || n > ModelChecker.MAX_PHILS) {
+							System.err.println("model checker handles 2 to "
+								+ ModelChecker.MAX_PHILS + " philosophers");
+							System.exit(1);
+						}
+						System.exit(new ModelChecker(n).run());
+					}
+				}
         JFrame f = new JFrame("Dining");
         f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-				if(args.length > 0 && args[0].equals("-t")){
-					runTests = true;
-				}
         Dining me = new Dining();
         me.start(f, false);
         f.pack();            // calculate size of frame
@@ -220,6 +257,7 @@ class Philosopher extends Thread {
     private Fork right_fork;
     private Random prn;
     private Color color;
+    private long hungrySince = 0;
     int id;
     public boolean hasForkLeft = false;
     public boolean hasForkRight = true;
@@ -248,6 +286,13 @@ class Philosopher extends Thread {
 		{return color == WAIT_COLOR;}
 		public boolean isEating() 
 		{return color == EAT_COLOR;}
+		public Color getColor()
+		{return color;}
+
+		// when this philosopher last started waiting for forks
+		//
+		public long hungrySince()
+		{return hungrySince;}
 
 		public void reset() {
 			hasForkLeft = false;
@@ -370,6 +415,7 @@ class Philosopher extends Thread {
         color = FUMBLE_COLOR;//WAIT_COLOR;
         t.repaint();
         delay(FUMBLE_TIME);
+				hungrySince = System.currentTimeMillis();
 				color = WAIT_COLOR;
         if (!hasForkLeft) {
             left_fork.requestR = true;
@@ -538,6 +584,10 @@ class Table extends JPanel {
 				booky = new BookKeeper(philosophers);
 			}
 
+    public Philosopher[] getPhilosophers() {
+        return philosophers;
+    }
+
 	public void startTests() {
 				if(runTests) {
 					timer.scheduleAtFixedRate(booky,10,10);
@@ -547,6 +597,84 @@ class Table extends JPanel {
 
 class ResetException extends Exception { };
 
+// Raster view of the table, for more philosophers than fit as blobs.
+// Each philosopher owns one pixel of a BufferedImage, laid out row by
+// row in a square; the pixels are written directly into the image's
+// backing array and the image is scaled to fit the panel.  Rather than
+// repainting whenever a philosopher changes state, the view samples
+// every philosopher at a fixed frame rate, so the cost of painting
+// depends only on the number of philosophers, not on how busy they are.
+//
+// Clicking the panel toggles between state colors (same as the blobs)
+// and a heat view, in which waiting philosophers shade from yellow to
+// red with the time they have been waiting and everyone else is dark.
+//
+class Heatmap extends JPanel {
+    private static final int FRAME_RATE = 25;       // frames per second
+    private static final long MAX_WAIT = 10000;
+        // milliseconds of waiting shown as full heat
+    private static final int IDLE_RGB = 0x202020;
+    private static final int EMPTY_RGB = 0xffffff;
+
+    private final Philosopher[] philosophers;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private boolean showHeat = false;
+
+    // Constructor
+    //
+    public Heatmap(Philosopher[] phils, int CANVAS_SIZE) {
+        philosophers = phils;
+        int side = (int) Math.ceil(Math.sqrt(phils.length));
+        image = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, EMPTY_RGB);
+        setPreferredSize(new Dimension(CANVAS_SIZE, CANVAS_SIZE));
+
+        addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                showHeat = !showHeat;
+            }
+        });
+        new javax.swing.Timer(1000 / FRAME_RATE, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                sample();
+                repaint();
+            }
+        }).start();
+    }
+
+    // Copy the current state of every philosopher into the raster.
+    // Runs in the GUI thread, so it never races with paintComponent.
+    //
+    private void sample() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < philosophers.length; i++) {
+            Philosopher p = philosophers[i];
+            if (!showHeat) {
+                pixels[i] = p.getColor().getRGB() & 0xffffff;
+            } else if (p.isHungry()) {
+                long w = Math.min(now - p.hungrySince(), MAX_WAIT);
+                int green = (int) (255 - 255 * w / MAX_WAIT);
+                pixels[i] = 0xff0000 | (green << 8);
+            } else {
+                pixels[i] = IDLE_RGB;
+            }
+        }
+    }
+
+    public void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        // nearest-neighbor scaling keeps cells sharp when enlarged
+        Graphics2D g2 = (Graphics2D)g;
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+        g.setColor(Color.black);
+        g.drawRect(0, 0, getWidth()-1, getHeight()-1);
+    }
+}
+
 // The Coordinator serves to slow down execution, so that behavior is
 // visible on the screen, and to notify all running threads when the user
 // wants them to reset.
@@ -605,6 +733,7 @@ class Coordinator {
 class UI extends JPanel {
     private final Coordinator c;
     private final Table t;
+    private final Heatmap h;
 
     private final JRootPane root;
     private static final int externalBorder = 6;
@@ -617,11 +746,12 @@ class UI extends JPanel {
 
     // Constructor
     //
-    public UI(RootPaneContainer pane, Coordinator C, Table T,
+    public UI(RootPaneContainer pane, Coordinator C, Table T, Heatmap H,
               boolean isApplet) {
         final UI u = this;
         c = C;
         t = T;
+        h = H;
 
         final JPanel b = new JPanel();   // button panel
 
@@ -667,11 +797,15 @@ class UI extends JPanel {
             b.add(quitButton);
         }
 
-        // put the Table canvas and the button panel into the UI:
+        // put the Table canvas, the Heatmap (if any), and the button
+        // panel into the UI:
         setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
         setBorder(BorderFactory.createEmptyBorder(
             externalBorder, externalBorder, externalBorder, externalBorder));
         add(t);
+        if (h != null) {
+            add(h);
+        }
         add(b);
 
         // put the UI into the Frame or Applet:
@@ -680,3 +814,1038 @@ class UI extends JPanel {
         root.setDefaultButton(runButton);
     }
 }
+
+// Lock-free set of protocol states, used by the ModelChecker.
+//
+// Each state gets a number, and its words and the number of the state
+// it was first reached from are kept in plain arrays indexed by that
+// number; traces and the liveness pass work with state numbers only.
+// Membership is an open-addressing hash table with linear probing whose
+// slots hold a state number plus one (0 means "empty"), split into
+// segments so that it can outgrow a single Java array.
+//
+// To add a state, a thread takes the next number, fills in the words
+// and parent for it, and then CASes the number into an empty slot.  A
+// thread probing past a slot compares against the words of the number
+// in it, which were written before the CAS made them visible.  If the
+// same state turns up in a slot first, the number is left unused: a
+// hole, with word 0 (which no state has; every word has its top bit
+// set).  That only happens when two threads add the same state at the
+// same moment.
+//
+// The set never resizes while threads are adding to it.  Instead the
+// checker calls reserve() between rounds of work to make sure there is
+// room for everything the next round could add.
+//
+class StateSet {
+    private static final int SEGMENT_BITS = 26;
+    private static final long MAX_CAPACITY = 1L << 31;     // slots
+    public static final int MAX_STATES = (int) (MAX_CAPACITY / 4 * 3);
+
+    private final boolean wide;             // two words per state
+    private final AtomicInteger numbers = new AtomicInteger();
+    private final AtomicInteger count = new AtomicInteger();
+
+    // by state number
+    private long[] words0;
+    private long[] words1;                  // only if wide
+    private int[] parents;
+
+    // hash table, by slot
+    private AtomicIntegerArray[] slots;
+    private long mask;
+    private int tableLimit;                 // most the table may hold
+    private int limit;                      // most numbers we may hand out
+
+    // Constructor
+    //
+    public StateSet(boolean isWide, int expected) {
+        wide = isWide;
+        words0 = new long[0];
+        words1 = new long[0];
+        parents = new int[0];
+        mask = -1;
+        tableLimit = 0;
+        reserve(expected);
+    }
+
+    private static long hash(long w0, long w1) {
+        long h = w0 * 0x9E3779B97F4A7C15L + w1;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int segment(long slot) {
+        return (int) (slot >>> SEGMENT_BITS);
+    }
+
+    private static int offset(long slot) {
+        return (int) slot & ((1 << SEGMENT_BITS) - 1);
+    }
+
+    // Make sure another extra states will fit, growing the table and
+    // the per-state arrays if need be.  Not safe to call while any
+    // thread is adding states.
+    //
+    public void reserve(int extra) {
+        long needed = (long) numbers.get() + extra;
+        if (needed > MAX_STATES) {
+            throw new IllegalStateException("more than " + MAX_STATES
+                + " states");
+        }
+        if (needed > words0.length) {
+            int length = (int) Math.min(MAX_STATES,
+                Math.max(needed, 2L * words0.length));
+            words0 = Arrays.copyOf(words0, length);
+            if (wide) words1 = Arrays.copyOf(words1, length);
+            parents = Arrays.copyOf(parents, length);
+        }
+        if (needed > tableLimit) {
+            rebuild(needed);
+        }
+        limit = Math.min(tableLimit, words0.length);
+    }
+
+    // Replace the table with one big enough for needed states.
+    //
+    private void rebuild(long needed) {
+        long capacity = Math.max(mask + 1, 1 << 10);
+        while (capacity / 4 * 3 < needed) {
+            capacity *= 2;
+        }
+        int nSegments = (int) Math.max(1, capacity >>> SEGMENT_BITS);
+        int segmentSize = (int) Math.min(capacity, 1 << SEGMENT_BITS);
+        slots = null;               // let the old table go first
+        slots = new AtomicIntegerArray[nSegments];
+        for (int s = 0; s < nSegments; s++) {
+            slots[s] = new AtomicIntegerArray(segmentSize);
+        }
+        mask = capacity - 1;
+        tableLimit = (int) Math.min(MAX_STATES, capacity / 4 * 3);
+
+        // put back everything we already had
+        for (int i = 0; i < numbers.get(); i++) {
+            if (words0[i] == 0) continue;           // hole
+            long slot = hash(words0[i], wide ? words1[i] : 0) & mask;
+            while (slots[segment(slot)].get(offset(slot)) != 0) {
+                slot = (slot+1) & mask;
+            }
+            slots[segment(slot)].set(offset(slot), i+1);
+        }
+    }
+
+    // Add state (w0, w1), reached from state parent (-1 for the
+    // initial state).  Return its number if it is new, or -1-k if it
+    // was already present as number k.  w1 is ignored unless the set
+    // is wide.
+    //
+    public int add(long w0, long w1, int parent) {
+        if (!wide) w1 = 0;
+        int i = -1;                 // our number, once we need one
+        for (long slot = hash(w0, w1) & mask; ; slot = (slot+1) & mask) {
+            AtomicIntegerArray seg = slots[segment(slot)];
+            int off = offset(slot);
+            int k = seg.get(off);
+            if (k == 0) {
+                if (i < 0) {
+                    i = numbers.getAndIncrement();
+                    if (i >= limit) {
+                        throw new IllegalStateException("state set full");
+                    }
+                    words0[i] = w0;
+                    if (wide) words1[i] = w1;
+                    parents[i] = parent;
+                }
+                if (seg.compareAndSet(off, 0, i+1)) {
+                    count.incrementAndGet();
+                    return i;
+                }
+                k = seg.get(off);       // somebody beat us to it
+            }
+            if (words0[k-1] == w0 && (!wide || words1[k-1] == w1)) {
+                if (i >= 0) words0[i] = 0;      // leave a hole
+                return -k;
+            }
+        }
+    }
+
+    // Return the number of state (w0, w1), or -1 if it isn't here.
+    //
+    public int find(long w0, long w1) {
+        if (!wide) w1 = 0;
+        for (long slot = hash(w0, w1) & mask; ; slot = (slot+1) & mask) {
+            int k = slots[segment(slot)].get(offset(slot));
+            if (k == 0) return -1;
+            if (words0[k-1] == w0 && (!wide || words1[k-1] == w1)) {
+                return k-1;
+            }
+        }
+    }
+
+    public long word0(int i) { return words0[i]; }
+    public long word1(int i) { return wide ? words1[i] : 0; }
+    public int parent(int i) { return parents[i]; }
+    public boolean isHole(int i) { return words0[i] == 0; }
+
+    // states in the set
+    public int size() { return count.get(); }
+
+    // numbers handed out so far, holes included
+    public int numbers() { return numbers.get(); }
+
+    // how many more numbers can be handed out before reserve()
+    public int room() { return limit - numbers.get(); }
+}
+
+// Exhaustive checker for the clean/dirty fork handoff in
+// Philosopher.hunger() and Philosopher.eat().
+//
+// Each philosopher is modeled as a program counter that walks through
+// those two methods one shared-variable access at a time; see step()
+// for the code each value of the program counter stands for.  Writes to
+// hasForkLeft and hasForkRight are folded into neighboring steps, since
+// nobody else looks at them, and Fork.release() (which clears all of a
+// fork's flags) is treated as a single step.  Steps that touch no
+// shared variable at all are merged into the step before them.
+// Delays, gates, and graphics are ignored, so every interleaving of the
+// threads is fair game, and accesses are assumed to be sequentially
+// consistent.
+//
+// A philosopher's state takes 7 bits and a fork's flags take 5.  Unit i
+// (12 bits) holds philosopher i and his left fork; five units are packed
+// into each of two longs, so tables of up to ten fit in a single pair.
+// Only up to MAX_PHILS are checked, though: the state space grows about
+// sixty-fold with each philosopher (1,765 states for two, 119,347 for
+// three, 6,965,424 for four), and five has more than 160 million even
+// with the reduction below.
+//
+// States are explored breadth first, in parallel, with a StateSet to
+// remember what has been seen.  Two neighbors eating at once is reported
+// as soon as it is found, with the shortest trace that leads to it.
+// After the whole space is known, the checker looks for cycles in which
+// everyone keeps taking steps: first one in which nobody ever eats, then,
+// for each philosopher, one in which he stays hungry.  Philosophers never
+// block -- they spin in hunger() -- so the first kind is how a deadlock
+// shows up.  That needs the whole graph, so it is only done for up to
+// MAX_LIVENESS_PHILS; for bigger tables the search uses a partial-order
+// reduction (see ample()) and checks mutual exclusion only.
+//
+class ModelChecker {
+    public static final int MAX_PHILS = 5;
+    public static final int MAX_LIVENESS_PHILS = 4;
+
+    // exit statuses, for scripts
+    public static final int PASSED = 0;     // checked everything, all fine
+    public static final int FAILED = 1;     // found a violation
+    public static final int GAVE_UP = 2;    // could not finish
+
+    // program counter values; see step()
+    private static final int THINK = 0;
+    private static final int LOOP = 3;
+    private static final int LAST_HUNGRY = 19;
+    private static final int EAT = 20;
+    private static final int RIGHT_REQUESTED = 28;
+    private static final int LEFT_REQUESTED = 29;
+    private static final int NOBODY = -1;       // see inside()
+
+    private static final String[] STEP_NAMES = {
+        "left.clean = true",                                // 0
+        "if (!hasForkLeft) left.requestR = true",
+        "if (!hasForkRight) right.requestL = true",
+        "test hasForkLeft && hasForkRight",
+        "test !hasForkRight && right.release2L",
+        "hasForkRight = true; right.requestL = false",      // 5
+        "right.release2L = false",
+        "test !hasForkLeft && left.release2R",
+        "hasForkLeft = true; left.requestR = false",
+        "left.release2R = false",
+        "test hasForkRight && !right.clean",                // 10
+        "right.clean = true",
+        "right.release(); hasForkRight = false",
+        "right.release2R = true",
+        "right.requestL = true",
+        "test hasForkLeft && !left.clean",                  // 15
+        "left.clean = true",
+        "left.release(); hasForkLeft = false",
+        "left.release2L = true",
+        "left.requestR = true",
+        "finish eating: left.clean = false",                // 20
+        "right.clean = false",
+        "test left.requestL",
+        "left.clean = true",
+        "left.release2L = true; hasForkLeft = false",
+        "test right.requestR",                              // 25
+        "right.clean = true",
+        "right.release2R = true; hasForkRight = false",
+        "then test right.requestR",                         // 28
+        "then test left.requestL",
+    };
+
+    // layout of a unit
+    private static final int PC_MASK = 31;
+    private static final int HAS_L = 1 << 5;
+    private static final int HAS_R = 1 << 6;
+    private static final int FORK_SHIFT = 7;
+    private static final int UNIT_BITS = 12;
+    private static final int UNIT_MASK = (1 << UNIT_BITS) - 1;
+    private static final int UNITS_PER_WORD = 5;
+    private static final long MARK = 1L << 63;
+
+    // fork flags
+    private static final int CLEAN = 1;
+    private static final int REQ_L = 2;
+    private static final int REQ_R = 4;
+    private static final int REL_L = 8;
+    private static final int REL_R = 16;
+    private static final int FORK_MASK = 31;
+
+    private static final int CHUNK = 1024;  // frontier states per grab
+
+    private final int n;
+    private final int nThreads;
+    private final int headroom;     // most states one round can add
+    private final int everyone;     // bit mask of all philosophers
+    private final boolean reduce;   // partial-order reduction; see ample()
+    private final StateSet seen;
+    private final AtomicInteger violation = new AtomicInteger(-1);
+
+    // Constructor
+    //
+    public ModelChecker(int N) {
+        n = N;
+        nThreads = Runtime.getRuntime().availableProcessors();
+        headroom = nThreads * CHUNK * n;
+        everyone = (1 << n) - 1;
+        reduce = n > MAX_LIVENESS_PHILS;
+        seen = new StateSet(n > UNITS_PER_WORD, 2 * headroom);
+    }
+
+    // Check everything, print the findings, and return one of PASSED,
+    // FAILED, or GAVE_UP.
+    //
+    public int run() {
+        long start = System.currentTimeMillis();
+        System.out.println("checking " + n + " philosophers with "
+            + nThreads + " threads");
+        int[] u = initial();
+        int root = seen.add(word(u, 0), word(u, 1), -1);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            int[] frontier = { root };
+            int depth = 0;
+            while (frontier.length > 0 && violation.get() < 0) {
+                // a round stops early when the set is nearly full; grow
+                // it and pick up where that round left off
+                ArrayList<int[]> found = new ArrayList<int[]>();
+                int levelStart = seen.numbers();
+                int done = 0;
+                while (done < frontier.length) {
+                    seen.reserve(headroom);
+                    done = expand(pool, frontier, done, levelStart, found);
+                }
+                frontier = concat(found);
+                depth++;
+            }
+            System.out.println(seen.size() + " states, depth " + depth
+                + ", " + (System.currentTimeMillis() - start) + " ms");
+
+            int bad = violation.get();
+            if (bad >= 0) {
+                System.out.println("MUTUAL EXCLUSION VIOLATED:"
+                    + " two neighbors eating at once");
+                printTrace(pathTo(bad), "  trace:");
+                return FAILED;
+            }
+            System.out.println("mutual exclusion holds");
+            if (reduce) {
+                System.out.println("deadlock and starvation not checked:"
+                    + " only done for up to " + MAX_LIVENESS_PHILS
+                    + " philosophers");
+                return PASSED;
+            }
+            boolean live = checkLiveness(pool);
+            System.out.println("done in "
+                + (System.currentTimeMillis() - start) + " ms");
+            return live ? PASSED : FAILED;
+        } catch (OutOfMemoryError e) {
+            System.err.println("ran out of memory after " + seen.size()
+                + " states (try a larger -Xmx)");
+            return GAVE_UP;
+        } catch (Exception e) {
+            Throwable why = (e.getCause() != null) ? e.getCause() : e;
+            System.err.println("gave up after " + seen.size() + " states: "
+                + why.getMessage());
+            return GAVE_UP;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Starting state: the same fork assignment Philosopher.reset() makes
+    // for five philosophers; for other sizes, each fork goes to the
+    // lower-numbered of its two neighbors.  All forks start dirty, with
+    // no requests or releases pending.
+    //
+    private int[] initial() {
+        int[] u = new int[n];
+        for (int i = 0; i < n; i++) {
+            boolean hasL;
+            boolean hasR;
+            if (n == 5) {
+                hasL = (i == 0 || i == 3);
+                hasR = !(i == 4 || i == 2);
+            } else {
+                hasL = (i == 0);
+                hasR = (i != n-1);
+            }
+            u[i] = THINK | (hasL ? HAS_L : 0) | (hasR ? HAS_R : 0);
+        }
+        return u;
+    }
+
+    // ---------------- state encoding ----------------
+
+    private long word(int[] u, int w) {
+        long k = MARK;
+        for (int j = 0; j < UNITS_PER_WORD; j++) {
+            int i = w * UNITS_PER_WORD + j;
+            if (i < n) k |= (long) u[i] << (UNIT_BITS * j);
+        }
+        return k;
+    }
+
+    private void decode(int state, int[] u) {
+        long w0 = seen.word0(state);
+        long w1 = seen.word1(state);
+        for (int i = 0; i < n; i++) {
+            long k = i < UNITS_PER_WORD ? w0 : w1;
+            u[i] = (int) (k >>> (UNIT_BITS * (i % UNITS_PER_WORD)))
+                & UNIT_MASK;
+        }
+    }
+
+    private static int pc(int unit) {
+        return unit & PC_MASK;
+    }
+
+    private static boolean isHungry(int unit) {
+        int pc = unit & PC_MASK;
+        return (pc > THINK && pc <= LAST_HUNGRY)
+            || pc == RIGHT_REQUESTED || pc == LEFT_REQUESTED;
+    }
+
+    private static boolean isEating(int unit) {
+        return (unit & PC_MASK) == EAT;
+    }
+
+    private static boolean fork(int[] u, int f, int flag) {
+        return ((u[f] >> FORK_SHIFT) & flag) != 0;
+    }
+
+    private static void setFork(int[] u, int f, int flag, boolean v) {
+        if (v) {
+            u[f] |= flag << FORK_SHIFT;
+        } else {
+            u[f] &= ~(flag << FORK_SHIFT);
+        }
+    }
+
+    // ---------------- transition relation ----------------
+
+    // Let philosopher p take one step.  Only u[p] and u[(p+1)%n] (the
+    // unit holding his right fork) can change.
+    //
+    private void step(int[] u, int p) {
+        int l = p;
+        int r = (p+1) % n;
+        boolean hasL = (u[p] & HAS_L) != 0;
+        boolean hasR = (u[p] & HAS_R) != 0;
+        int next;
+        switch (pc(u[p])) {
+            // hunger()
+            case 0:  setFork(u, l, CLEAN, true); next = 1; break;
+            case 1:  if (!hasL) setFork(u, l, REQ_R, true); next = 2; break;
+            case 2:  if (!hasR) setFork(u, r, REQ_L, true); next = LOOP; break;
+            case LOOP:
+                next = (hasL && hasR) ? EAT : 4; break;
+            case 4:  next = (!hasR && fork(u, r, REL_L)) ? 5 : 7; break;
+            case 5:  hasR = true; setFork(u, r, REQ_L, false); next = 6; break;
+            case 6:  setFork(u, r, REL_L, false); next = 7; break;
+            case 7:  next = (!hasL && fork(u, l, REL_R)) ? 8 : 10; break;
+            case 8:  hasL = true; setFork(u, l, REQ_R, false); next = 9; break;
+            case 9:  setFork(u, l, REL_R, false); next = 10; break;
+            case 10: next = (hasR && !fork(u, r, CLEAN))
+                         ? RIGHT_REQUESTED : 15; break;
+            case RIGHT_REQUESTED:
+                     next = fork(u, r, REQ_R) ? 11 : 15; break;
+            case 11: setFork(u, r, CLEAN, true); next = 12; break;
+            case 12: setFork(u, r, FORK_MASK, false); hasR = false;
+                     next = 13; break;
+            case 13: setFork(u, r, REL_R, true); next = 14; break;
+            case 14: setFork(u, r, REQ_L, true); next = 15; break;
+            case 15: next = (hasL && !fork(u, l, CLEAN))
+                         ? LEFT_REQUESTED : LOOP; break;
+            case LEFT_REQUESTED:
+                     next = fork(u, l, REQ_L) ? 16 : LOOP; break;
+            case 16: setFork(u, l, CLEAN, true); next = 17; break;
+            case 17: setFork(u, l, FORK_MASK, false); hasL = false;
+                     next = 18; break;
+            case 18: setFork(u, l, REL_L, true); next = 19; break;
+            case 19: setFork(u, l, REQ_R, true); next = LOOP; break;
+            // eat(), after the delay
+            case EAT: setFork(u, l, CLEAN, false); next = 21; break;
+            case 21: setFork(u, r, CLEAN, false); next = 22; break;
+            case 22: next = fork(u, l, REQ_L) ? 23 : 24; break;
+            case 23: setFork(u, l, CLEAN, true); next = 24; break;
+            case 24: setFork(u, l, REL_L, true); hasL = false;
+                     next = 25; break;
+            case 25: next = fork(u, r, REQ_R) ? 26 : 27; break;
+            case 26: setFork(u, r, CLEAN, true); next = 27; break;
+            case 27: setFork(u, r, REL_R, true); hasR = false;
+                     next = THINK; break;
+            default: throw new IllegalStateException("bad pc " + pc(u[p]));
+        }
+        // Steps that touch nothing shared are taken right away, since
+        // no other philosopher could tell the difference.  This keeps
+        // the state space several times smaller.
+        for (;;) {
+            if (next == 1 && hasL) next = 2;
+            else if (next == 2 && hasR) next = LOOP;
+            else if (next == LOOP) next = (hasL && hasR) ? EAT : 4;
+            else if (next == 4 && hasR) next = 7;
+            else if (next == 7 && hasL) next = 10;
+            else if (next == 10 && !hasR) next = 15;
+            else if (next == 15 && !hasL) next = LOOP;
+            else break;
+        }
+        u[p] = (u[p] & ~(PC_MASK | HAS_L | HAS_R)) | next
+            | (hasL ? HAS_L : 0) | (hasR ? HAS_R : 0);
+    }
+
+    // Number of the state reached when philosopher p steps from state.
+    // The state must already have been seen.
+    //
+    private int successor(int state, int p, int[] u) {
+        decode(state, u);
+        step(u, p);
+        return seen.find(word(u, 0), word(u, 1));
+    }
+
+    // ---------------- partial-order reduction ----------------
+
+    // The fork that philosopher p's next step reads or writes, or -1 if
+    // it touches no fork.
+    //
+    private int forkTouched(int[] u, int p) {
+        int l = p;
+        int r = (p+1) % n;
+        boolean hasL = (u[p] & HAS_L) != 0;
+        boolean hasR = (u[p] & HAS_R) != 0;
+        switch (pc(u[p])) {
+            case 1:  case 7:  return hasL ? -1 : l;
+            case 2:  case 4:  return hasR ? -1 : r;
+            case 10: return hasR ? r : -1;
+            case 15: return hasL ? l : -1;
+            case 0:  case 8:  case 9:  case 16: case 17: case 18: case 19:
+            case EAT: case 22: case 23: case 24: case LEFT_REQUESTED:
+                return l;
+            default: return r;
+        }
+    }
+
+    // Does philosopher p's next step start or stop him eating?
+    //
+    private boolean isVisible(int[] u, int p, int[] scratch) {
+        if (isEating(u[p])) return true;
+        System.arraycopy(u, 0, scratch, 0, n);
+        step(scratch, p);
+        return isEating(scratch[p]);
+    }
+
+    // Choose whose steps to take from state u, as a bit mask: an ample
+    // set in the sense of Clarke, Grumberg and Peled.  Steps on
+    // different forks commute, so starting from one philosopher, add
+    // the other user of whatever fork his next step touches, and so on
+    // until the set is closed; nobody outside it can then do anything
+    // that interferes with a step inside it before one of those steps
+    // is taken.  A set with a step that starts or stops somebody eating
+    // is no good, since mutual exclusion is about exactly that.  So is
+    // one with a step back to a state no deeper than u (numbered below
+    // levelStart): every cycle has such a step, and a cycle of reduced
+    // states could put off the other philosophers' steps forever.  This
+    // is the breadth-first form of the cycle proviso; expand() checks
+    // it again, since other threads may add states meanwhile.  Return
+    // the smallest good set, or everyone if there is none smaller.
+    //
+    // This preserves whether two neighbors can eat at once, but not the
+    // fair cycles that the liveness pass looks for, so it is only used
+    // for tables too big for that pass.
+    //
+    private int ample(int[] u, int[] scratch, int levelStart) {
+        int best = everyone;
+        for (int p = 0; p < n; p++) {
+            int set = 1 << p;
+            int todo = 1 << p;
+            boolean ok = true;
+            while (todo != 0 && ok) {
+                int x = Integer.numberOfTrailingZeros(todo);
+                todo &= todo - 1;
+                if (isVisible(u, x, scratch)) {
+                    ok = false;
+                    break;
+                }
+                int f = forkTouched(u, x);
+                if (f < 0) continue;
+                int y = (f == x) ? (x+n-1) % n : f;     // the other user
+                if ((set & (1 << y)) == 0) {
+                    set |= 1 << y;
+                    todo |= 1 << y;
+                }
+            }
+            if (ok && Integer.bitCount(set) < Integer.bitCount(best)
+                && !goesBack(u, set, scratch, levelStart)) {
+                best = set;
+            }
+        }
+        return best;
+    }
+
+    // Does a step by somebody in set lead from u to a state numbered
+    // below levelStart?
+    //
+    private boolean goesBack(int[] u, int set, int[] scratch,
+                             int levelStart) {
+        for (int p = 0; p < n; p++) {
+            if ((set & (1 << p)) == 0) continue;
+            System.arraycopy(u, 0, scratch, 0, n);
+            step(scratch, p);
+            int s = seen.find(word(scratch, 0), word(scratch, 1));
+            if (s >= 0 && s < levelStart) return true;
+        }
+        return false;
+    }
+
+    // ---------------- parallel breadth-first search ----------------
+
+    // Add the successors of the states in frontier, starting at
+    // position start, to the set, and append those that were new to
+    // found.  Workers grab CHUNK states at a time and keep their own
+    // output lists, so the only contended data is the StateSet itself.
+    // Nobody grabs another chunk once the set has less than headroom
+    // room left, so that the chunks already grabbed are sure to fit.
+    // Return the position of the first state not expanded.
+    //
+    // States found in this round of the search are numbered from
+    // levelStart up, so a lower number means a state at the same or a
+    // smaller depth.
+    //
+    private int expand(ExecutorService pool, final int[] frontier,
+                       int start, final int levelStart,
+                       ArrayList<int[]> found)
+            throws InterruptedException, ExecutionException {
+        final AtomicInteger next = new AtomicInteger(start);
+        ArrayList<Callable<int[]>> workers = new ArrayList<Callable<int[]>>();
+        for (int t = 0; t < nThreads; t++) {
+            workers.add(new Callable<int[]>() {
+                public int[] call() {
+                    int[] u = new int[n];
+                    int[] scratch = new int[n];
+                    int[] out = new int[CHUNK];
+                    int count = 0;
+                    while (seen.room() >= headroom) {
+                        int from = next.getAndAdd(CHUNK);
+                        if (from >= frontier.length) break;
+                        int to = Math.min(from + CHUNK, frontier.length);
+                        for (int f = from; f < to; f++) {
+                            int state = frontier[f];
+                            decode(state, u);
+                            int todo = reduce ? ample(u, scratch, levelStart)
+                                            : everyone;
+                            int taken = 0;
+                            boolean revisited = false;
+                            while (todo != 0) {
+                                int p = Integer.numberOfTrailingZeros(todo);
+                                todo &= todo - 1;
+                                taken |= 1 << p;
+                                int r = (p+1) % n;
+                                int savedP = u[p];
+                                int savedR = u[r];
+                                step(u, p);
+                                int s = seen.add(word(u, 0), word(u, 1), state);
+                                if (s >= 0) {
+                                    if (count == out.length) {
+                                        out = Arrays.copyOf(out, 2 * count);
+                                    }
+                                    out[count++] = s;
+                                    if (isEating(u[p])
+                                        && (isEating(u[r])
+                                            || isEating(u[(p+n-1) % n]))) {
+                                        violation.compareAndSet(-1, s);
+                                    }
+                                } else if (-1-s < levelStart) {
+                                    revisited = true;
+                                }
+                                u[p] = savedP;
+                                u[r] = savedR;
+                                // Any cycle has a step that goes no
+                                // deeper, and such a step from a reduced
+                                // state might close a cycle that puts off
+                                // the other steps forever; take them too
+                                // (the BFS form of the cycle proviso).
+                                if (todo == 0 && revisited) {
+                                    todo = everyone & ~taken;
+                                }
+                            }
+                        }
+                    }
+                    return Arrays.copyOf(out, count);
+                }
+            });
+        }
+        for (Future<int[]> part : pool.invokeAll(workers)) {
+            found.add(part.get());
+        }
+        return Math.min(next.get(), frontier.length);
+    }
+
+    private static int[] concat(ArrayList<int[]> parts) {
+        int total = 0;
+        for (int[] part : parts) {
+            total += part.length;
+        }
+        int[] result = new int[total];
+        int k = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, result, k, part.length);
+            k += part.length;
+        }
+        return result;
+    }
+
+    // ---------------- liveness ----------------
+
+    // the graph, by state number; see buildGraph()
+    private int[] successors;   // n per state
+    private short[] flags;      // bit i: i is hungry; bit n: somebody eats
+
+    // Tarjan bookkeeping, by state number; see fairComponent()
+    private int[] index;        // 0 = not yet visited
+    private int[] low;          // < 0: finished, in component -low
+    private int[] stack;
+    private int[] callState;
+    private int[] callEdge;
+
+    // Deadlock: a fair cycle among the states in which nobody is
+    // eating.  Starvation of philosopher i: a fair cycle among the
+    // states in which i is hungry.  (A cycle is fair if every
+    // philosopher takes a step in it.)  The first of each kind gets
+    // a trace.  Return true if there are none.
+    //
+    private boolean checkLiveness(ExecutorService pool)
+            throws InterruptedException, ExecutionException {
+        int size = seen.numbers();
+        if ((long) size * n > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("too many states for the"
+                + " liveness pass");
+        }
+        buildGraph(pool);
+        index = new int[size];
+        low = new int[size];
+        stack = new int[size];
+        callState = new int[size];
+        callEdge = new int[size];
+
+        boolean live = true;
+        int[] found = fairComponent(NOBODY);
+        if (found == null) {
+            System.out.println("no deadlock: somebody always gets to eat");
+        } else {
+            live = false;
+            System.out.println("DEADLOCK: the philosophers can go on"
+                + " forever without anybody eating");
+            printTrace(pathTo(found[found.length-1]), "  trace:");
+            printTrace(cycle(found, NOBODY),
+                "  ... and then, forever (nobody eating):");
+        }
+
+        boolean traced = false;
+        for (int i = 0; i < n; i++) {
+            found = fairComponent(i);
+            if (found == null) {
+                System.out.println("philosopher " + i + " cannot starve");
+                continue;
+            }
+            live = false;
+            System.out.println("STARVATION: philosopher " + i
+                + " can stay hungry forever");
+            if (!traced) {
+                traced = true;
+                printTrace(pathTo(found[found.length-1]), "  trace:");
+                printTrace(cycle(found, i), "  ... and then, forever"
+                    + " (philosopher " + i + " hungry):");
+            }
+        }
+        return live;
+    }
+
+    // Work out every edge, and which philosophers are hungry or eating
+    // in every state, once, in parallel; the n+1 searches that follow
+    // only look things up.
+    //
+    private void buildGraph(ExecutorService pool)
+            throws InterruptedException, ExecutionException {
+        final int size = seen.numbers();
+        successors = new int[size * n];
+        flags = new short[size];
+        final AtomicInteger next = new AtomicInteger(0);
+        ArrayList<Callable<Object>> workers = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < nThreads; t++) {
+            workers.add(new Callable<Object>() {
+                public Object call() {
+                    int[] u = new int[n];
+                    for (;;) {
+                        int from = next.getAndAdd(CHUNK);
+                        if (from >= size) return null;
+                        int to = Math.min(from + CHUNK, size);
+                        for (int v = from; v < to; v++) {
+                            if (seen.isHole(v)) continue;
+                            decode(v, u);
+                            int f = 0;
+                            for (int j = 0; j < n; j++) {
+                                if (isHungry(u[j])) f |= 1 << j;
+                                if (isEating(u[j])) f |= 1 << n;
+                            }
+                            flags[v] = (short) f;
+                            for (int p = 0; p < n; p++) {
+                                successors[v*n + p] = successor(v, p, u);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (Future<Object> f : pool.invokeAll(workers)) {
+            f.get();
+        }
+    }
+
+    // Is state v part of the subgraph searched for who: the states
+    // where philosopher who is hungry, or, for NOBODY, the states where
+    // nobody is eating?
+    //
+    private boolean inside(int v, int who) {
+        if (who == NOBODY) return (flags[v] & (1 << n)) == 0;
+        return (flags[v] & (1 << who)) != 0;
+    }
+
+    // Find the strongly connected components of the subgraph for who
+    // (iterative Tarjan), and return the members of the first one that
+    // is fair, or null if there is none.  The last member is the root
+    // of the component.  Leaves index and low describing this search,
+    // for the use of cycle().
+    //
+    private int[] fairComponent(int who) {
+        int size = seen.numbers();
+        Arrays.fill(index, 0);
+        Arrays.fill(low, 0);
+        int counter = 0;
+        int components = 0;
+        int sp = 0;
+        for (int root = 0; root < size; root++) {
+            if (index[root] != 0 || seen.isHole(root)) continue;
+            if (!inside(root, who)) continue;
+
+            int csp = 0;
+            index[root] = low[root] = ++counter;
+            stack[sp++] = root;
+            callState[csp] = root;
+            callEdge[csp++] = 0;
+            while (csp > 0) {
+                int v = callState[csp-1];
+                int e = callEdge[csp-1];
+                if (e < n) {
+                    callEdge[csp-1]++;
+                    int w = successors[v*n + e];
+                    if (!inside(w, who)) continue;
+                    if (index[w] == 0) {
+                        index[w] = low[w] = ++counter;
+                        stack[sp++] = w;
+                        callState[csp] = w;
+                        callEdge[csp++] = 0;
+                    } else if (low[w] > 0) {        // still on stack
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                csp--;
+                if (low[v] == index[v]) {
+                    int id = ++components;
+                    int bottom = sp;
+                    do {
+                        low[stack[--bottom]] = -id;
+                    } while (stack[bottom] != v);
+                    int[] members = Arrays.copyOfRange(stack, bottom, sp);
+                    sp = bottom;
+                    if (isFair(members, who)) {
+                        return members;
+                    }
+                } else {
+                    int parent = callState[csp-1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Is w in finished component id of the latest search for who?
+    //
+    private boolean inComponent(int w, int id, int who) {
+        return index[w] != 0 && low[w] == -id && inside(w, who);
+    }
+
+    // Does every philosopher have a step that stays inside the
+    // component?
+    //
+    private boolean isFair(int[] members, int who) {
+        if (members.length < 2) return false;   // there are no self-loops
+        int id = -low[members[0]];
+        boolean[] stepped = new boolean[n];
+        int missing = n;
+        for (int m : members) {
+            for (int p = 0; p < n; p++) {
+                if (stepped[p]) continue;
+                if (inComponent(successors[m*n + p], id, who)) {
+                    stepped[p] = true;
+                    missing--;
+                }
+            }
+            if (missing == 0) return true;
+        }
+        return false;
+    }
+
+    // ---------------- counterexamples ----------------
+
+    // A trace is a list of state numbers; entry k+1 is reached from
+    // entry k by one step of some philosopher.
+
+    // shortest path from the initial state, via BFS parent links
+    //
+    private ArrayList<Integer> pathTo(int state) {
+        ArrayList<Integer> path = new ArrayList<Integer>();
+        for (int s = state; s >= 0; s = seen.parent(s)) {
+            path.add(s);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    // A cycle through a component just found by fairComponent(who)
+    // that starts and ends at its root and includes a step by every
+    // philosopher.
+    //
+    private ArrayList<Integer> cycle(int[] members, int who) {
+        int id = -low[members[0]];
+        int start = members[members.length-1];
+        ArrayList<Integer> path = new ArrayList<Integer>();
+        path.add(start);
+        int here = start;
+        for (int p = 0; p < n; p++) {
+            // walk to a member from which p can step inside the component
+            ArrayList<Integer> leg = search(here, -1, p, id, who);
+            for (int k = 1; k < leg.size(); k++) path.add(leg.get(k));
+            here = successors[leg.get(leg.size()-1)*n + p];
+            path.add(here);
+        }
+        ArrayList<Integer> back = search(here, start, -1, id, who);
+        for (int k = 1; k < back.size(); k++) path.add(back.get(k));
+        return path;
+    }
+
+    // Breadth-first search within component id, from state from, for
+    // state target (if target >= 0) or else for a state where
+    // philosopher p has a step that stays in the component.
+    //
+    private ArrayList<Integer> search(int from, int target, int p, int id,
+                                      int who) {
+        HashMap<Integer, Integer> prev = new HashMap<Integer, Integer>();
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        prev.put(from, -1);
+        queue.add(from);
+        while (!queue.isEmpty()) {
+            int v = queue.poll();
+            boolean done;
+            if (target >= 0) {
+                done = (v == target);
+            } else {
+                done = inComponent(successors[v*n + p], id, who);
+            }
+            if (done) {
+                ArrayList<Integer> path = new ArrayList<Integer>();
+                for (int s = v; s >= 0; s = prev.get(s)) path.add(s);
+                Collections.reverse(path);
+                return path;
+            }
+            for (int q = 0; q < n; q++) {
+                int w = successors[v*n + q];
+                if (inComponent(w, id, who) && !prev.containsKey(w)) {
+                    prev.put(w, v);
+                    queue.add(w);
+                }
+            }
+        }
+        throw new IllegalStateException("component is not connected");
+    }
+
+    // Print a trace under the given heading, one state per line, with
+    // the step between each pair.
+    //
+    private void printTrace(ArrayList<Integer> path, String heading) {
+        int[] u = new int[n];
+        System.out.println(heading);
+        for (int k = 0; k < path.size(); k++) {
+            int s = path.get(k);
+            decode(s, u);
+            System.out.println("    " + describe(u));
+            if (k+1 < path.size()) {
+                int next = path.get(k+1);
+                for (int p = 0; p < n; p++) {
+                    if (successor(s, p, u) == next) {
+                        decode(s, u);
+                        System.out.println("  phil " + p + ": "
+                            + STEP_NAMES[pc(u[p])]);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // e.g. "T0 lr | H3 - ..." -- for each philosopher, T(hinking),
+    // H(ungry), E(ating) or R(eleasing) and his program counter, which
+    // forks he holds, then his left fork's flags: C(lean), request
+    // L/R, release2 l/r.
+    //
+    private String describe(int[] u) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            int pc = pc(u[i]);
+            if (i > 0) sb.append(" | ");
+            sb.append(pc == THINK ? 'T' : isHungry(u[i]) ? 'H'
+                : pc == EAT ? 'E' : 'R');
+            sb.append(pc).append(' ');
+            sb.append((u[i] & HAS_L) != 0 ? 'l' : '-');
+            sb.append((u[i] & HAS_R) != 0 ? 'r' : '-');
+            sb.append(" f").append(i).append('=');
+            sb.append(fork(u, i, CLEAN) ? 'C' : '-');
+            sb.append(fork(u, i, REQ_L) ? 'L' : '-');
+            sb.append(fork(u, i, REQ_R) ? 'R' : '-');
+            sb.append(fork(u, i, REL_L) ? 'l' : '-');
+            sb.append(fork(u, i, REL_R) ? 'r' : '-');
+        }
+        return sb.toString();
+    }
+}